@@ -34,6 +34,18 @@ public class Calculator {
         return evalPostfix(postfix);
     }
 
+    // Parse once, the result can be stored or sent and run later (see CompiledExpression)
+    byte[] compile(String expr) {
+        List<String> tokens = tokenize(expr);
+        List<String> postfix = infix2Postfix(tokens);
+        return CompiledExpression.encode(postfix);
+    }
+
+    // Run a compiled expression, no tokenizing or parsing
+    double evalCompiled(byte[] code) {
+        return CompiledExpression.eval(code, this);
+    }
+
     // ------  Evaluate RPN expression -------------------
 
     double evalPostfix(List<String> postfix) {
@@ -0,0 +1,141 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ *   Routes expressions between a static list of WebCalcServer peers
+ *
+ *   Every peer builds the same hash ring from the same list, so they all
+ *   agree on who owns an expression without talking to each other. Only the
+ *   owner parses it, so each parse cache holds just its share of the work.
+ */
+class ClusterRouter {
+
+    final static String EVAL_URL = "/internal/eval";
+    final static String NANOS_HEADER = "X-Calc-Nanos";
+
+    // Points per peer on the ring, more points gives a more even split
+    final static int REPLICAS = 64;
+    // A peer that failed is skipped for this long before we try it again
+    final static long DOWN_MILLIS = 5000;
+
+    final String self;
+    final List<String> peers;
+    final TreeMap<Integer, String> ring = new TreeMap<>();
+    final Map<String, Long> downUntil = new ConcurrentHashMap<>();
+
+    // Keeps connections to the peers open between requests
+    final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofMillis(500))
+            .build();
+
+    // Metrics
+    final AtomicLong forwarded = new AtomicLong();
+    final AtomicLong fallbacks = new AtomicLong();
+    final AtomicLong forwardNanos = new AtomicLong();
+    final AtomicLong maxForwardNanos = new AtomicLong();
+    final AtomicLong hopNanos = new AtomicLong();
+
+    ClusterRouter(String self, List<String> peers) {
+        if (!peers.contains(self)) {
+            throw new IllegalArgumentException("Peer list does not contain " + self);
+        }
+        this.self = self;
+        this.peers = peers;
+        for (String peer : peers) {
+            for (int i = 0; i < REPLICAS; i++) {
+                ring.put(hash(peer + "#" + i), peer);
+            }
+        }
+    }
+
+    // The owner is the first peer clockwise from the hash of the key
+    String owner(String key) {
+        Map.Entry<Integer, String> e = ring.ceilingEntry(hash(key));
+        if (e == null) {
+            e = ring.firstEntry();
+        }
+        return e.getValue();
+    }
+
+    boolean isUp(String peer) {
+        Long until = downUntil.get(peer);
+        return until == null || until < System.currentTimeMillis();
+    }
+
+    // Ask the owner to evaluate the (normalized) expression
+    // Returns null if the owner could not be reached, the caller then does it locally
+    Double forward(String peer, String key) {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://" + peer + EVAL_URL))
+                .timeout(Duration.ofSeconds(2))
+                .POST(HttpRequest.BodyPublishers.ofString(key, StandardCharsets.UTF_8))
+                .build();
+        long start = System.nanoTime();
+        HttpResponse<String> response;
+        try {
+            response = client.send(request, HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+        } catch (IOException ioe) {
+            return fallback(peer);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return fallback(peer);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        if (response.statusCode() == 400) {
+            // The expression itself is bad, same error as if we did it here
+            throw new IllegalArgumentException(response.body());
+        } else if (response.statusCode() != 200) {
+            return fallback(peer);
+        }
+        forwarded.incrementAndGet();
+        forwardNanos.addAndGet(elapsed);
+        maxForwardNanos.accumulateAndGet(elapsed, Math::max);
+        // Hop latency is the part of the round trip not spent evaluating on the owner
+        long remote = response.headers().firstValueAsLong(NANOS_HEADER).orElse(0);
+        hopNanos.addAndGet(Math.max(0, elapsed - remote));
+        return Double.parseDouble(response.body());
+    }
+
+    private Double fallback(String peer) {
+        downUntil.put(peer, System.currentTimeMillis() + DOWN_MILLIS);
+        fallbacks.incrementAndGet();
+        return null;
+    }
+
+    String metrics() {
+        long n = forwarded.get();
+        StringBuilder sb = new StringBuilder();
+        sb.append("cluster_peers ").append(peers.size()).append("\n");
+        sb.append("forward_requests ").append(n).append("\n");
+        sb.append("forward_fallbacks ").append(fallbacks.get()).append("\n");
+        sb.append("forward_latency_avg_us ").append(n == 0 ? 0 : forwardNanos.get() / n / 1000).append("\n");
+        sb.append("forward_latency_max_us ").append(maxForwardNanos.get() / 1000).append("\n");
+        sb.append("hop_latency_avg_us ").append(n == 0 ? 0 : hopNanos.get() / n / 1000).append("\n");
+        return sb.toString();
+    }
+
+    // FNV-1a, the same on every JVM so all peers build the same ring
+    static int hash(String s) {
+        int h = 0x811c9dc5;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x01000193;
+        }
+        // Spread the low bits, FNV alone clusters on short similar keys
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h;
+    }
+}
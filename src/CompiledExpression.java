@@ -0,0 +1,236 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/*
+ *   A compact binary form of a parsed (postfix) expression
+ *
+ *   Can be evaluated without tokenizing or parsing again, sent over the wire
+ *   or written one after another to a file (each one knows its own length).
+ *
+ *   Layout:
+ *     'C' 'X'          magic
+ *     version          1 byte
+ *     length           varint, number of bytes of code
+ *     code             opcodes, see below
+ *     checksum         CRC32 of everything before it, 4 bytes big endian
+ *
+ *   Opcodes:
+ *     INT    varint    push a whole number
+ *     DOUBLE 8 bytes   push any other number (big endian IEEE 754)
+ *     ADD, SUB, MUL, DIV, POW
+ */
+class CompiledExpression {
+
+    final static String BAD_CODE = "Bad compiled expression";
+
+    final static int VERSION = 1;
+    final static byte MAGIC_1 = 'C';
+    final static byte MAGIC_2 = 'X';
+
+    final static int INT = 0x01;
+    final static int DOUBLE = 0x02;
+    final static int ADD = 0x10;
+    final static int SUB = 0x11;
+    final static int MUL = 0x12;
+    final static int DIV = 0x13;
+    final static int POW = 0x14;
+
+    // Longest code we write or read, far more than any typed expression needs
+    final static int MAX_CODE_LENGTH = 1 << 20;
+    // Longest whole blob: magic and version, varint length (at most 5 bytes), code, checksum
+    final static int MAX_LENGTH = 3 + 5 + MAX_CODE_LENGTH + 4;
+
+    // Operator for ADD .. POW, in the same order as Calculator.OPERATORS
+    private final static String[] OPS = {"+", "-", "*", "/", "^"};
+
+    // ------- Encode -------------------------
+
+    static byte[] encode(List<String> postfix) {
+        ByteArrayOutputStream code = new ByteArrayOutputStream();
+        for (String token : postfix) {
+            int op = Calculator.OPERATORS.indexOf(token);
+            if (token.length() == 1 && op >= 0) {
+                code.write(ADD + op);
+            } else if (Character.isDigit(token.charAt(0))) {
+                writeNumber(code, token);
+            } else {
+                throw new IllegalArgumentException(Calculator.OP_NOT_FOUND);
+            }
+        }
+
+        if (code.size() > MAX_CODE_LENGTH) {
+            throw new IllegalArgumentException(BAD_CODE);
+        }
+        ByteArrayOutputStream blob = new ByteArrayOutputStream(code.size() + 12);
+        blob.write(MAGIC_1);
+        blob.write(MAGIC_2);
+        blob.write(VERSION);
+        writeVarint(blob, code.size());
+        blob.write(code.toByteArray(), 0, code.size());
+        CRC32 crc = new CRC32();
+        crc.update(blob.toByteArray());
+        writeInt(blob, (int) crc.getValue());
+        return blob.toByteArray();
+    }
+
+    // Whole numbers that fit in a long as a varint (1 byte up to 127), anything else as a double
+    // Only 0-9 count as whole numbers, other digits go through parseDouble and fail like in evalPostfix
+    private static void writeNumber(ByteArrayOutputStream os, String token) {
+        if (token.length() <= 18 && token.chars().allMatch(c -> c >= '0' && c <= '9')) {
+            os.write(INT);
+            writeVarint(os, Long.parseLong(token));
+        } else {
+            os.write(DOUBLE);
+            long bits = Double.doubleToLongBits(Double.parseDouble(token));
+            writeInt(os, (int) (bits >>> 32));
+            writeInt(os, (int) bits);
+        }
+    }
+
+    private static void writeVarint(ByteArrayOutputStream os, long value) {
+        while ((value & ~0x7fL) != 0) {
+            os.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        os.write((int) value);
+    }
+
+    private static void writeInt(ByteArrayOutputStream os, int value) {
+        os.write(value >>> 24);
+        os.write(value >>> 16);
+        os.write(value >>> 8);
+        os.write(value);
+    }
+
+    // ------- Evaluate -----------------------
+
+    // Run the code directly, the Calculator is only used to apply the operators
+    static double eval(byte[] blob, Calculator calc) {
+        int start = codeStart(blob);
+        int end = blob.length - 4;
+        // Every push takes at least 2 bytes, so this is always deep enough
+        double[] stack = new double[(end - start) / 2 + 1];
+        int top = 0;
+        int i = start;
+        while (i < end) {
+            int op = blob[i++] & 0xff;
+            if (op == INT) {
+                long value = 0;
+                int shift = 0;
+                int b;
+                do {
+                    if (i >= end || shift > 63) {
+                        throw new IllegalArgumentException(BAD_CODE);
+                    }
+                    b = blob[i++] & 0xff;
+                    value |= (long) (b & 0x7f) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+                stack[top++] = value;
+            } else if (op == DOUBLE) {
+                if (i + 8 > end) {
+                    throw new IllegalArgumentException(BAD_CODE);
+                }
+                stack[top++] = Double.longBitsToDouble(((long) readInt(blob, i) << 32) | (readInt(blob, i + 4) & 0xffffffffL));
+                i += 8;
+            } else if (op >= ADD && op <= POW) {
+                if (top < 2) {
+                    throw new IllegalArgumentException(Calculator.MISSING_OPERAND);
+                }
+                // Same order as Calculator.evalPostfix, a is the top of the stack
+                double a = stack[--top];
+                double b = stack[--top];
+                stack[top++] = calc.applyOperator(OPS[op - ADD], a, b);
+            } else {
+                throw new IllegalArgumentException(BAD_CODE);
+            }
+        }
+        if (top != 1) {
+            throw new IllegalArgumentException(top == 0 ? Calculator.MISSING_OPERAND : Calculator.MISSING_OPERATOR);
+        }
+        return stack[0];
+    }
+
+    // Check the header and checksum, returns where the code starts
+    static int codeStart(byte[] blob) {
+        if (blob.length < 8 || blob[0] != MAGIC_1 || blob[1] != MAGIC_2 || blob[2] != VERSION) {
+            throw new IllegalArgumentException(BAD_CODE);
+        }
+        long length = 0;
+        int shift = 0;
+        int i = 3;
+        int b;
+        do {
+            if (i >= blob.length || shift > 28) {
+                throw new IllegalArgumentException(BAD_CODE);
+            }
+            b = blob[i++] & 0xff;
+            length |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        if (length > MAX_CODE_LENGTH || i + length + 4 != blob.length) {
+            throw new IllegalArgumentException(BAD_CODE);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(blob, 0, blob.length - 4);
+        if ((int) crc.getValue() != readInt(blob, blob.length - 4)) {
+            throw new IllegalArgumentException(BAD_CODE);
+        }
+        return i;
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xff) << 24 | (b[i + 1] & 0xff) << 16 | (b[i + 2] & 0xff) << 8 | (b[i + 3] & 0xff);
+    }
+
+    // ------- Storage ------------------------
+
+    // Read the next expression from a stream of them (written with just os.write(blob))
+    // Returns null at the end of the stream
+    static byte[] read(InputStream is) throws IOException {
+        DataInputStream in = new DataInputStream(is);
+        int first = in.read();
+        if (first < 0) {
+            return null;
+        }
+        try {
+            // Check the header before trusting the length, the stream may not be ours
+            if (first != MAGIC_1 || in.readUnsignedByte() != MAGIC_2 || in.readUnsignedByte() != VERSION) {
+                throw new IOException(BAD_CODE);
+            }
+            ByteArrayOutputStream blob = new ByteArrayOutputStream(64);
+            blob.write(MAGIC_1);
+            blob.write(MAGIC_2);
+            blob.write(VERSION);
+            long length = 0;
+            int shift = 0;
+            int b;
+            do {
+                if (shift > 28) {
+                    throw new IOException(BAD_CODE);
+                }
+                b = in.readUnsignedByte();
+                blob.write(b);
+                length |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            if (length > MAX_CODE_LENGTH) {
+                throw new IOException(BAD_CODE);
+            }
+            // readNBytes grows its buffer as data arrives, a short stream costs only what it holds
+            byte[] rest = in.readNBytes((int) length + 4);
+            if (rest.length != length + 4) {
+                throw new IOException(BAD_CODE);
+            }
+            blob.write(rest);
+            return blob.toByteArray();
+        } catch (EOFException e) {
+            throw new IOException(BAD_CODE, e);
+        }
+    }
+}
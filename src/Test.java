@@ -1,3 +1,14 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.List;
 
 import static java.lang.System.out;
@@ -10,8 +21,9 @@ import static java.lang.System.out;
  */
 class Test {
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws Exception {
         new Test().test();
+        new Test().testCluster();
     }
 
     final Calculator calculator = new Calculator();
@@ -115,10 +127,163 @@ class Test {
         } catch (IllegalArgumentException e) {
             out.println(e.getMessage().equals(Calculator.MISSING_OPERATOR));
         }
+
+        // Compiled expressions ----------------------------
+        // Small numbers take one byte, big ones still come back right
+        out.println(calculator.compile("1 + 2").length == 3 + 1 + 5 + 4);
+        e("123456789012345678901234567890 + 1", 123456789012345678901234567890.0 + 1);
+        // Other digits than 0-9 fail the same way as in evalPostfix
+        String arabic = "\u0663 + 1";
+        try {
+            calculator.eval(arabic);
+            out.println(false);
+        } catch (NumberFormatException e) {
+            out.println(true);
+        }
+        try {
+            calculator.evalCompiled(calculator.compile(arabic));
+            out.println(false);
+        } catch (NumberFormatException e) {
+            out.println(true);
+        }
+        try {
+            calculator.evalCompiled(calculator.compile("1 / 0"));
+        } catch (IllegalArgumentException e) {
+            out.println(e.getMessage().equals(Calculator.DIV_BY_ZERO));
+        }
+        try {
+            byte[] code = calculator.compile("1 + 2");
+            code[code.length - 1]++;  // checksum no longer matches
+            calculator.evalCompiled(code);
+        } catch (IllegalArgumentException e) {
+            out.println(e.getMessage().equals(CompiledExpression.BAD_CODE));
+        }
+        try {
+            calculator.evalCompiled(new byte[]{'C', 'X'});
+        } catch (IllegalArgumentException e) {
+            out.println(e.getMessage().equals(CompiledExpression.BAD_CODE));
+        }
+        // Many written to one stream, read back one by one
+        try {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            os.write(calculator.compile("1 + 2"));
+            os.write(calculator.compile("3 * (10 + 2)"));
+            InputStream is = new ByteArrayInputStream(os.toByteArray());
+            out.println(calculator.evalCompiled(CompiledExpression.read(is)) == 3
+                    && calculator.evalCompiled(CompiledExpression.read(is)) == 36
+                    && CompiledExpression.read(is) == null);
+        } catch (IOException e) {
+            out.println(false);
+        }
+        // Not ours, or a length far too big, is an error without reading on
+        byte[][] bad = {
+                {'Z', 'Z', 1, 0, 0, 0, 0, 0},
+                {'C', 'X', 1, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 7}
+        };
+        for (byte[] b : bad) {
+            try {
+                CompiledExpression.read(new ByteArrayInputStream(b));
+                out.println(false);
+            } catch (IOException e) {
+                out.println(e.getMessage().equals(CompiledExpression.BAD_CODE));
+            }
+        }
+    }
+
+    // Cluster ---------------------------------------
+    // Three WebCalcServers on localhost, should output true for everything
+    void testCluster() throws Exception {
+        List<String> peers = Arrays.asList("localhost:18081", "localhost:18082", "localhost:18083");
+        ClusterRouter r1 = new ClusterRouter(peers.get(0), peers);
+        ClusterRouter r2 = new ClusterRouter(peers.get(1), peers);
+        // Every peer agrees on the owner
+        out.println(r1.owner("1 + 2").equals(r2.owner("1 + 2")));
+
+        WebCalcServer[] servers = new WebCalcServer[peers.size()];
+        for (int i = 0; i < servers.length; i++) {
+            servers[i] = new WebCalcServer(18081 + i, new ClusterRouter(peers.get(i), peers));
+            servers[i].run();
+        }
+        try {
+            // Same answer whichever peer is asked, spacing does not matter
+            for (int i = 0; i < servers.length; i++) {
+                out.println(servers[i].eval(" 3 * (10 + 2)") == 36);
+                out.println(servers[i].eval("3*(10+2)") == 36);
+            }
+            // Errors from the owner come back as the same exception
+            out.println(!r1.owner("1 / 0").equals(peers.get(0)));  // so it is forwarded
+            try {
+                servers[0].eval("1 / 0");
+                out.println(false);
+            } catch (IllegalArgumentException e) {
+                out.println(e.getMessage().equals(Calculator.DIV_BY_ZERO));
+            }
+            // Some requests were forwarded, and some arrived from a peer
+            long forwarded = 0;
+            long hops = 0;
+            for (int i = 0; i < servers.length; i++) {
+                String metrics = get("http://localhost:" + (18081 + i) + "/metrics");
+                forwarded += metric(metrics, "forward_requests");
+                hops += metric(metrics, "hops_received");
+            }
+            out.println(forwarded > 0 && hops >= forwarded);
+
+            // Compile on one peer, run on another
+            byte[] code = post("http://localhost:18081/compile", "Expression=" + URLEncoder.encode("2^(1+1)", "UTF-8"));
+            out.println(new String(post("http://localhost:18082/run", code)).equals("4.0"));
+            out.println(new String(post("http://localhost:18082/run", new byte[]{1, 2, 3})).equals(CompiledExpression.BAD_CODE));
+            // Too big to be a blob, rejected without reading it all
+            byte[] big = new byte[CompiledExpression.MAX_LENGTH + 1];
+            out.println(new String(post("http://localhost:18082/run", big)).equals(CompiledExpression.BAD_CODE));
+            out.println(new String(post("http://localhost:18082/compile", big)).equals(CompiledExpression.BAD_CODE));
+
+            // A peer that is down, the others fall back to doing it themselves
+            servers[2].stop();
+            int ownedByDown = 0;
+            for (int i = 0; i < 20; i++) {
+                String expr = i + " + 1";
+                out.println(servers[0].eval(expr) == i + 1 && servers[1].eval(expr) == i + 1);
+                if (r1.owner(expr).equals(peers.get(2))) {
+                    ownedByDown++;
+                }
+            }
+            // Each peer falls back once, after that the down peer is skipped
+            out.println(ownedByDown > 1);
+            out.println(metric(get("http://localhost:18081/metrics"), "forward_fallbacks") == 1);
+            out.println(metric(get("http://localhost:18082/metrics"), "forward_fallbacks") == 1);
+        } finally {
+            for (WebCalcServer s : servers) {
+                s.stop();
+            }
+        }
     }
 
     // ------- Below are helper methods for testing NOTHING to do here -------------------
 
+    long metric(String metrics, String name) {
+        for (String line : metrics.split("\n")) {
+            if (line.startsWith(name + " ")) {
+                return Long.parseLong(line.substring(name.length() + 1));
+            }
+        }
+        return -1;
+    }
+
+    byte[] post(String url, String body) throws Exception {
+        return post(url, body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    byte[] post(String url, byte[] body) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(url))
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body)).build();
+        return HttpClient.newHttpClient().send(request, HttpResponse.BodyHandlers.ofByteArray()).body();
+    }
+
+    String get(String url) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(url)).build();
+        return HttpClient.newHttpClient().send(request, HttpResponse.BodyHandlers.ofString()).body();
+    }
+
     // t for tokenize, a very short name, lazy, avoid typing ...
     void t(String expr, String expected) {
         List<String> list = calculator.tokenize(expr);
@@ -143,5 +308,10 @@ class Test {
         List<String> tokens = calculator.tokenize(infix);
         List<String> postfix = calculator.infix2Postfix(tokens);
         double result = calculator.evalPostfix(postfix);
+        // The compiled form must give exactly the same
+        double compiled = calculator.evalCompiled(CompiledExpression.encode(postfix));
+        if (Double.compare(result, compiled) != 0) {
+            out.println("result: " + result + " compiled: " + compiled);
+        }
     }
 }
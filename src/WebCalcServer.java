@@ -6,18 +6,36 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static java.lang.System.out;
+import static java.net.HttpURLConnection.HTTP_BAD_REQUEST;
 import static java.net.HttpURLConnection.HTTP_OK;
 
 /*
 
         A Server to be able to do calculation on the Web
         Start this and visit localhost:8080
+        (or java WebCalcServer 8081 to use another port)
+
+        Cluster mode, start one per peer with the same peer list:
+            java WebCalcServer 8081 localhost:8081,localhost:8082,localhost:8083
+        Each expression is evaluated by the peer that owns it (see ClusterRouter),
+        statistics are at /metrics
+
+        Compile once, run many times:
+            POST /compile with the expression as body, returns a CompiledExpression
+            POST /run with that as body, returns the result (no parsing)
 
         **** NOTHING TO DO HERE ****
 
@@ -25,21 +43,78 @@ import static java.net.HttpURLConnection.HTTP_OK;
 public class WebCalcServer {
 
     public static void main(String[] args) throws IOException {
-        new WebCalcServer().run();
+        // [port] [peer,peer,...] [self], self defaults to localhost:<port>
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        if (args.length >= 2) {
+            List<String> peers = Arrays.asList(args[1].split(","));
+            String self = args.length > 2 ? args[2] : "localhost:" + port;
+            new WebCalcServer(port, new ClusterRouter(self, peers)).run();
+        } else {
+            new WebCalcServer(port, null).run();
+        }
     }
 
-    public final int DEFAULT_PORT = 8080;
+    public final static int DEFAULT_PORT = 8080;
     public final String HOME_URL = "/";
+    public final String METRICS_URL = "/metrics";
+    public final String COMPILE_URL = "/compile";
+    public final String RUN_URL = "/run";
+    final static int CACHE_SIZE = 1024;
+    // Longest expression /compile accepts, anything longer would not compile anyway
+    final static int MAX_EXPRESSION_LENGTH = CompiledExpression.MAX_CODE_LENGTH;
     private final Calculator calc = new Calculator();
+    private final int port;
+    private final ClusterRouter router;  // null if not in cluster mode
+    private HttpServer server;
+    private ExecutorService executor;
+
+    // Normalized expression -> postfix, least recently used is dropped first
+    private final Map<String, List<String>> parseCache = Collections.synchronizedMap(
+            new LinkedHashMap<String, List<String>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, List<String>> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            });
+
+    // Metrics
+    private final AtomicLong localEvals = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong hopsReceived = new AtomicLong();
+
+    WebCalcServer() {
+        this(DEFAULT_PORT, null);
+    }
+
+    WebCalcServer(int port, ClusterRouter router) {
+        this.port = port;
+        this.router = router;
+    }
 
-    private void run() throws IOException {
-        HttpServer server = HttpServer.create(new InetSocketAddress(DEFAULT_PORT), 0);
+    void run() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 0);
         HttpContext context = server.createContext(HOME_URL);
         context.setHandler(this::handleRequest);
+        server.createContext(METRICS_URL).setHandler(this::handleMetrics);
+        server.createContext(COMPILE_URL).setHandler(this::handleCompile);
+        server.createContext(RUN_URL).setHandler(this::handleRun);
+        if (router != null) {
+            server.createContext(ClusterRouter.EVAL_URL).setHandler(this::handleForwarded);
+        }
+        // More than one thread, a request may wait on a peer that waits on us
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
         server.start();
         out.println("Server started. In a web browser, visit localhost:" + server.getAddress().getPort());
     }
 
+    void stop() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdown();
+        }
+    }
+
     // Main method to handle HTTP requests
     private void handleRequest(HttpExchange exchange) {
         try {
@@ -54,7 +129,7 @@ public class WebCalcServer {
                 // This is "Expression=1+2 ..."
                 String expr = args.split("=")[1];
                 expr = URLDecoder.decode(expr, "UTF-8");
-                double result = calc.eval(expr);
+                double result = eval(expr);
                 out.println(expr + " = " + result);
                 sendResponse(exchange, getPage(result));
             } else {
@@ -65,6 +140,130 @@ public class WebCalcServer {
         }
     }
 
+    // Requests forwarded from another peer, we own these so never forward again
+    private void handleForwarded(HttpExchange exchange) {
+        try {
+            long start = System.nanoTime();
+            String key = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            hopsReceived.incrementAndGet();
+            String response;
+            int status;
+            try {
+                response = String.valueOf(evalLocal(key));
+                status = HTTP_OK;
+            } catch (IllegalArgumentException e) {
+                response = e.getMessage();
+                status = HTTP_BAD_REQUEST;
+            }
+            exchange.getResponseHeaders().set(ClusterRouter.NANOS_HEADER, String.valueOf(System.nanoTime() - start));
+            sendResponse(exchange, status, response);
+        } catch (IOException ioe) {
+            out.println("An exception occurred " + ioe.getMessage());
+        }
+    }
+
+    // Body is the expression, either as is or "Expression=..." from the form
+    private void handleCompile(HttpExchange exchange) {
+        try {
+            byte[] body = exchange.getRequestBody().readNBytes(MAX_EXPRESSION_LENGTH + 1);
+            if (body.length > MAX_EXPRESSION_LENGTH) {
+                sendResponse(exchange, HTTP_BAD_REQUEST, CompiledExpression.BAD_CODE);
+                return;
+            }
+            String expr = new String(body, StandardCharsets.UTF_8);
+            if (expr.startsWith("Expression=")) {
+                expr = URLDecoder.decode(expr.substring("Expression=".length()), "UTF-8");
+            }
+            try {
+                // Not through the parse cache, in cluster mode that holds only what this peer owns
+                byte[] code = calc.compile(expr);
+                exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+                sendResponse(exchange, HTTP_OK, code);
+            } catch (IllegalArgumentException e) {
+                sendResponse(exchange, HTTP_BAD_REQUEST, e.getMessage());
+            }
+        } catch (IOException ioe) {
+            out.println("An exception occurred " + ioe.getMessage());
+        }
+    }
+
+    // Body is what /compile returned, always run here, there is nothing to parse
+    private void handleRun(HttpExchange exchange) {
+        try {
+            // Never read more than the longest valid blob
+            byte[] code = exchange.getRequestBody().readNBytes(CompiledExpression.MAX_LENGTH + 1);
+            if (code.length > CompiledExpression.MAX_LENGTH) {
+                sendResponse(exchange, HTTP_BAD_REQUEST, CompiledExpression.BAD_CODE);
+                return;
+            }
+            try {
+                double result = calc.evalCompiled(code);
+                sendResponse(exchange, HTTP_OK, String.valueOf(result));
+            } catch (IllegalArgumentException e) {
+                sendResponse(exchange, HTTP_BAD_REQUEST, e.getMessage());
+            }
+        } catch (IOException ioe) {
+            out.println("An exception occurred " + ioe.getMessage());
+        }
+    }
+
+    private void handleMetrics(HttpExchange exchange) {
+        try {
+            StringBuilder sb = new StringBuilder();
+            sb.append("local_evals ").append(localEvals.get()).append("\n");
+            sb.append("parse_cache_hits ").append(cacheHits.get()).append("\n");
+            sb.append("parse_cache_size ").append(parseCache.size()).append("\n");
+            sb.append("hops_received ").append(hopsReceived.get()).append("\n");
+            if (router != null) {
+                sb.append(router.metrics());
+            }
+            sendResponse(exchange, HTTP_OK, sb.toString());
+        } catch (IOException ioe) {
+            out.println("An exception occurred " + ioe.getMessage());
+        }
+    }
+
+    // ---------- Evaluation ----------------
+
+    // Evaluate here or on the peer owning the expression
+    double eval(String expr) {
+        String key = normalize(expr);
+        if (router != null) {
+            String owner = router.owner(key);
+            if (!owner.equals(router.self) && router.isUp(owner)) {
+                Double result = router.forward(owner, key);
+                if (result != null) {
+                    return result;
+                }
+            }
+        }
+        return evalLocal(key);
+    }
+
+    double evalLocal(String key) {
+        if (key.isEmpty()) {
+            return Double.NaN;
+        }
+        localEvals.incrementAndGet();
+        return calc.evalPostfix(parse(key));
+    }
+
+    private List<String> parse(String key) {
+        List<String> postfix = parseCache.get(key);
+        if (postfix != null) {
+            cacheHits.incrementAndGet();
+        } else {
+            postfix = calc.infix2Postfix(calc.tokenize(key));
+            parseCache.put(key, postfix);
+        }
+        return postfix;
+    }
+
+    // Same expression, same key, whatever the spacing ("1+2" and " 1 + 2" -> "1 + 2")
+    String normalize(String expr) {
+        return String.join(" ", calc.tokenize(expr));
+    }
+
     // ---------- Helper Methods ----------------
 
     private String getPage(double result) {
@@ -77,9 +276,17 @@ public class WebCalcServer {
     }
 
     private void sendResponse(HttpExchange exchange, String response) throws IOException {
-        exchange.sendResponseHeaders(HTTP_OK, response.getBytes().length);
+        sendResponse(exchange, HTTP_OK, response);
+    }
+
+    private void sendResponse(HttpExchange exchange, int status, String response) throws IOException {
+        sendResponse(exchange, status, response.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void sendResponse(HttpExchange exchange, int status, byte[] bytes) throws IOException {
+        exchange.sendResponseHeaders(status, bytes.length);
         OutputStream os = exchange.getResponseBody();
-        os.write(response.getBytes());
+        os.write(bytes);
         os.close();
     }
 